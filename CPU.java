@@ -25,17 +25,19 @@ public class CPU {
 	private final int MICROSTATE_EXIT = 4;	//Represents Fetch's microstates are over
 	
 	//Constant int values for OPCODES
-	private final int LDI_OPCODE = 1;	//OPCODE for the LDI instruction
-	private final int LD_OPCODE = 2;	//OPCODE for the LD instruction
-	private final int ST_OPCODE = 4;	//OPCODE for the ST instruction
-	private final int ADD_OPCODE = 8;	//OPCODE for the ADD instruction
-	private final int SUB_OPCODE = 9;	//OPCODE for the SUB instruction
-	private final int AND_OPCODE = 10;	//OPCODE for the AND instruction
-	private final int OR_OPCODE = 11;	//OPCODE for the OR instruction
-	private final int NOT_OPCODE = 12;	//OPCODE for the NOT instruction
-	private final int BR_OPCODE = 16;   //OPCODE for the BR instruction
-	private final int BRZ_OPCODE = 17;  //OPCODE for the BRZ instruction
-	private final int HALT_OPCODE = 29; //OPCODE for the HALT instruction
+	static final int LDI_OPCODE = 1;	//OPCODE for the LDI instruction
+	static final int LD_OPCODE = 2;	//OPCODE for the LD instruction
+	static final int ST_OPCODE = 4;	//OPCODE for the ST instruction
+	static final int ADD_OPCODE = 8;	//OPCODE for the ADD instruction
+	static final int SUB_OPCODE = 9;	//OPCODE for the SUB instruction
+	static final int AND_OPCODE = 10;	//OPCODE for the AND instruction
+	static final int OR_OPCODE = 11;	//OPCODE for the OR instruction
+	static final int NOT_OPCODE = 12;	//OPCODE for the NOT instruction
+	static final int BR_OPCODE = 16;   //OPCODE for the BR instruction
+	static final int BRZ_OPCODE = 17;  //OPCODE for the BRZ instruction
+	static final int HALT_OPCODE = 29; //OPCODE for the HALT instruction
+	static final int[] OPCODES = {LDI_OPCODE, LD_OPCODE, ST_OPCODE, ADD_OPCODE, SUB_OPCODE, AND_OPCODE, 
+	        OR_OPCODE, NOT_OPCODE, BR_OPCODE, BRZ_OPCODE, HALT_OPCODE}; //Every other opcode is a NOP
 	
 	//Constant int values for instruction format
 	private final int FORMAT_1 = 1;	//Represents Format 1 Type instruction
@@ -44,16 +46,17 @@ public class CPU {
 	private final int FORMAT_4 = 4;	//Represents Format 4 Type instruction
 	
 	//Constant values for two's complement min and max (for checking overflow)
-	private final long TWOS_COMP_MIN = -2147483648; 
-	private final long TWOS_COMP_MAX = 2147483647;
+	static final long TWOS_COMP_MIN = -2147483648; 
+	static final long TWOS_COMP_MAX = 2147483647;
     
 	//Memory and Register Files
-	private final int MEMORY_SIZE = 100;  //The size of the program's memory
-	private final int REGFILE_SIZE = 16;  //The size of the program's register file
+	static final int MEMORY_SIZE = 100;  //The size of the program's memory
+	static final int REGFILE_SIZE = 16;  //The size of the program's register file
 	private long[] MEMORY;                //Contains the program's memory as an array of longs
 	private long[] RegFile;               //Contains the register file
     private String TEXT_FILE;             //The text file that contains the program
     private boolean RUN;                  //Whether program is set to run continuously
+    private boolean QUIET;                //Whether console output is suppressed (headless mode)
 	    
 	//Control Unit States
 	private int state;				//Represents the Control Unit's current macrostate
@@ -85,8 +88,8 @@ public class CPU {
 	private int sr2;				//Contains the source register 2 of the instruction
 	private int immed;				//Contains the immediate value of the instruction	
 	
-	//Scanner for console input
-	private Scanner inputReader = new Scanner(System.in);
+	//Scanner for console input (only created for the interactive console)
+	private Scanner inputReader;
 		
 	/*
 	 * Constructs an FSM_Control_Unit object which simulates the LC-2200 control unit.  
@@ -109,6 +112,7 @@ public class CPU {
 		sr2 = 0;
 		immed = 0;
 		RUN = false;
+		inputReader = new Scanner(System.in);
 		RegFile = getRandLongArray(REGFILE_SIZE);
 		MEMORY = getRandLongArray(MEMORY_SIZE);
 		printState();
@@ -118,6 +122,22 @@ public class CPU {
 		runCycle();
 	}
 
+	/*
+	 * Constructs a headless CPU loaded with copies of the given memory image and register file.
+	 * Nothing is printed and no console input is read; the caller drives the machine with step().
+	 * Used by CPUFuzzer to run programs against the reference semantics.
+	 */
+	public CPU(long[] memory, long[] regFile) {
+		RUN = true;
+		QUIET = true;
+		RegFile = new long[REGFILE_SIZE];
+		MEMORY = new long[MEMORY_SIZE];
+		System.arraycopy(regFile, 0, RegFile, 0, Math.min(regFile.length, REGFILE_SIZE));
+		System.arraycopy(memory, 0, MEMORY, 0, Math.min(memory.length, MEMORY_SIZE));
+		state = FETCH;
+		microstate = 0;
+	}
+
     /*
      * Creates a new long array of specified size, filled with random long's up to 2^31-1.
      */
@@ -185,25 +205,74 @@ public class CPU {
 	    printState();
         pause();
 	    while (state != HALT) {//Run the FSM's cycle until state is changed to HALT
-		    switch (state) {//Switch to macrostate that is the current state of the Control Unit
-		        case FETCH: //Runs the fetch() method which simulates Fetch's microstates
-		                fetch();
-		                break;
-		                
-		        case DECODE: //Runs the decode() method which simulates Decode's microstates
-		                decode();
-		                break;
-		        
-		        case EXECUTE: //Runs the execute() method which simulates Execute's microstates
-		                execute();
-		                break;
-		                 
-		        default: 
-		                break;
-			}
+		    advance();
         }
 	}
 
+	/*
+	 * Runs the macrostate that is the Control Unit's current state.
+	 */
+	private void advance() {
+	    switch (state) {//Switch to macrostate that is the current state of the Control Unit
+	        case FETCH: //Runs the fetch() method which simulates Fetch's microstates
+	                fetch();
+	                break;
+	                
+	        case DECODE: //Runs the decode() method which simulates Decode's microstates
+	                decode();
+	                break;
+	        
+	        case EXECUTE: //Runs the execute() method which simulates Execute's microstates
+	                execute();
+	                break;
+	                 
+	        default: 
+	                break;
+		}
+	}
+
+	/*
+	 * Runs one full instruction (fetch, decode and execute).
+	 * Returns false once the machine has halted, true otherwise.
+	 */
+	public boolean step() {
+	    if (state == HALT) {
+	        return false;
+	    }
+	    do {
+	        advance();
+	    } while (state != FETCH && state != HALT);
+	    return state != HALT;
+	}
+
+	/*
+	 * Returns the Program Counter's contents.
+	 */
+	public long getPC() {
+	    return PC;
+	}
+
+	/*
+	 * Returns the Status Word Register's contents.
+	 */
+	public long getSW() {
+	    return SW;
+	}
+
+	/*
+	 * Returns a copy of the register file.
+	 */
+	public long[] getRegisterDump() {
+	    return RegFile.clone();
+	}
+
+	/*
+	 * Returns a copy of the memory.
+	 */
+	public long[] getMemoryDump() {
+	    return MEMORY.clone();
+	}
+
 	/*
 	 * Simulates the Fetch macrostate by running its microstates.
 	 */
@@ -354,10 +423,8 @@ public class CPU {
 	 * otherwise it is set to FETCH.
 	 */
 	private void execute() {
-	    String lastOP = " RTL: ";
 	    switch (opcode) {
 		    case LDI_OPCODE: //Load indirect
-		        lastOP += "(LDI) R" + dr + " <- " + immed;
 				RegFile[dr] = immed;
 		        break;
 		        
@@ -366,10 +433,7 @@ public class CPU {
 			    ALU_B = immed;
 			    ALU_R = ALU_A + ALU_B;
 			    ALU_R = twosCompToLong(longToTwosComp(ALU_R)); //ensures only 32 bits
-			    if (ALU_R > MEMORY.length || ALU_R < 0) {
-				    lastOP += "(LD) Error, memory out of bounds at: " + ALU_R;
-				} else {
-				    lastOP += "(LD) R" + dr + " <- MEM[R" + sr1 + " + "+ immed + "]";
+			    if (ALU_R <= MEMORY.length && ALU_R >= 0) {
 				    RegFile[dr] = MEMORY[(int) ALU_R];
 				}
 				break;
@@ -379,16 +443,12 @@ public class CPU {
                 ALU_B = immed;
                 ALU_R = ALU_A + ALU_B;
                 ALU_R = twosCompToLong(longToTwosComp(ALU_R)); //ensures only 32 bits
-			    if (ALU_R > MEMORY.length || ALU_R < 0) {
-                    lastOP += "(ST) Error, memory out of bounds at: " + ALU_R;
-			    } else {
-                    lastOP += "(ST) MEM[R" + sr1 + " + "+ immed + "] <- R" + dr;
+			    if (ALU_R <= MEMORY.length && ALU_R >= 0) {
                     MEMORY[(int) ALU_R] = RegFile[dr];                    
                 }
 	        	break;
 	        	
 			case ADD_OPCODE: //Addition
-			    lastOP += "(ADD) R" + dr + " <- R" + sr1 + " + R" + sr2;
 				ALU_A = RegFile[sr1];
 				ALU_B = RegFile[sr2];
 				ALU_R = ALU_A + ALU_B;
@@ -399,7 +459,6 @@ public class CPU {
 	        	
 			case SUB_OPCODE: //Subtraction
 			    SW = 0;
-			    lastOP += "(SUB) R" + dr + " <- R" + sr1 + " - R" + sr2;
 			    ALU_A = RegFile[sr1];
                 ALU_B = RegFile[sr2];
                 ALU_R = ALU_A - ALU_B;
@@ -409,7 +468,6 @@ public class CPU {
                 break;
 	        	
 			case AND_OPCODE: //Bit-wise AND
-			    lastOP += "(AND) R" + dr + " <- R" + sr1 + " AND R" + sr2;
 			    ALU_A = RegFile[sr1];
                 ALU_B = RegFile[sr2];
                 String binA = longToTwosComp(ALU_A);
@@ -428,7 +486,6 @@ public class CPU {
                 break;
 	        	
 			case OR_OPCODE: //Bit-wise OR
-			    lastOP += "(OR) R" + dr + " <- R" + sr1 + " OR R" + sr2;
 			    ALU_A = RegFile[sr1];
                 ALU_B = RegFile[sr2];
                 binA = longToTwosComp(ALU_A);
@@ -447,7 +504,6 @@ public class CPU {
                 break;
 	        	
             case NOT_OPCODE: //Bit-wise NOT
-                lastOP += "(NOT) R" + dr + " <- NOT R" + sr1;
                 ALU_A = RegFile[sr1];
                 binA = longToTwosComp(ALU_A);
                 binR = "";
@@ -464,7 +520,6 @@ public class CPU {
                 break;
                 
             case BR_OPCODE: //Unconditional branch
-                lastOP += "(BR) PC <- iterated PC + " + immed;
                 ALU_A = PC;
                 ALU_B = immed;
                 ALU_R = ALU_A + ALU_B;
@@ -473,32 +528,27 @@ public class CPU {
                 break;
                 
             case BRZ_OPCODE: //Branch on zero
-                lastOP += "(BRZ) ";
                 if (CC_Zero) {
                     ALU_A = PC;
                     ALU_B = immed;
                     ALU_R = ALU_A + ALU_B;
                     ALU_R = twosCompToLong(longToTwosComp(ALU_R)); //ensures only 32 bits
                     PC = ALU_R;
-                    lastOP += "PC <- iterated PC + " + immed;
-                }
-                else {
-                    lastOP += "Did not branch";
                 }
                 break;
 	        	
 			case HALT_OPCODE: //Halt
-			    lastOP += "(HALT) Halting Program...";
 				state = HALT;
 	        	break;
            
 		    default: 
-		        lastOP += "(NOP) No operation";
 		        	break;
 		}
-	    printState();
-	    System.out.print(lastOP);
-	    System.out.print("     Binary: " + IRstring);
+	    if (!QUIET) {
+	        printState();
+	        System.out.print(getRTL());
+	        System.out.print("     Binary: " + IRstring);
+	    }
         if (state != HALT) { //Only change state to FETCH if HALT is not chosen
 			state = FETCH; //Set state to FETCH after Execute is complete
 			if (!RUN) {
@@ -508,6 +558,78 @@ public class CPU {
 		
 	}
 
+	/*
+	 * Returns the RTL description of the instruction execute() just ran, for printing to the console.  
+	 * It is only built when the state is printed, so headless runs skip the String work.
+	 */
+	private String getRTL() {
+	    String lastOP = " RTL: ";
+	    switch (opcode) {
+		    case LDI_OPCODE: //Load indirect
+		        lastOP += "(LDI) R" + dr + " <- " + immed;
+		        break;
+		        
+			case LD_OPCODE: //Load base-relative
+			    if (ALU_R > MEMORY.length || ALU_R < 0) {
+				    lastOP += "(LD) Error, memory out of bounds at: " + ALU_R;
+				} else {
+				    lastOP += "(LD) R" + dr + " <- MEM[R" + sr1 + " + "+ immed + "]";
+				}
+				break;
+	        	
+			case ST_OPCODE: //Store base-relative
+			    if (ALU_R > MEMORY.length || ALU_R < 0) {
+                    lastOP += "(ST) Error, memory out of bounds at: " + ALU_R;
+			    } else {
+                    lastOP += "(ST) MEM[R" + sr1 + " + "+ immed + "] <- R" + dr;
+                }
+	        	break;
+	        	
+			case ADD_OPCODE: //Addition
+			    lastOP += "(ADD) R" + dr + " <- R" + sr1 + " + R" + sr2;
+				break;
+	        	
+			case SUB_OPCODE: //Subtraction
+			    lastOP += "(SUB) R" + dr + " <- R" + sr1 + " - R" + sr2;
+                break;
+	        	
+			case AND_OPCODE: //Bit-wise AND
+			    lastOP += "(AND) R" + dr + " <- R" + sr1 + " AND R" + sr2;
+                break;
+	        	
+			case OR_OPCODE: //Bit-wise OR
+			    lastOP += "(OR) R" + dr + " <- R" + sr1 + " OR R" + sr2;
+                break;
+	        	
+            case NOT_OPCODE: //Bit-wise NOT
+                lastOP += "(NOT) R" + dr + " <- NOT R" + sr1;
+                break;
+                
+            case BR_OPCODE: //Unconditional branch
+                lastOP += "(BR) PC <- iterated PC + " + immed;
+                break;
+                
+            case BRZ_OPCODE: //Branch on zero
+                lastOP += "(BRZ) ";
+                if (CC_Zero) {
+                    lastOP += "PC <- iterated PC + " + immed;
+                }
+                else {
+                    lastOP += "Did not branch";
+                }
+                break;
+	        	
+			case HALT_OPCODE: //Halt
+			    lastOP += "(HALT) Halting Program...";
+	        	break;
+           
+		    default: 
+		        lastOP += "(NOP) No operation";
+		        	break;
+		}
+	    return lastOP;
+	}
+
 	/*
      * Sets condition codes based on long result from an operation.
      */
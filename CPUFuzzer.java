@@ -0,0 +1,896 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The CPUFuzzer class is a differential fuzzing harness for the SC4 simulator.  It generates random
+ * programs, runs each one on every registered engine and compares the registers, PC, SW and memory
+ * at regular checkpoints against the reference CPU.  A diverging program is shrunk to a minimal
+ * reproducer before it is reported.
+ *
+ * Usage: java CPUFuzzer [--engine <class>]... [programs] [seed] [threads]
+ *        java CPUFuzzer [--engine <class>]... --replay fuzz_<seed>.txt
+ *        java CPUFuzzer --self-test
+ * Program i uses seed + i, so "java CPUFuzzer 1 <seed>" reruns a single reported case.  Engines
+ * are added with --engine (a class with a public no-argument constructor) or register().
+ */
+public class CPUFuzzer {
+
+	//Limits for generated programs and runs
+	private static final int MAX_PROGRAM_SIZE = 64;		//Longest program, the rest of memory is data
+	private static final int MAX_LOOP_COUNT = 8;		//Most iterations of a generated loop
+	private static final int MAX_LOOP_BODY = 6;			//Most instructions in a generated loop body
+	private static final int MAX_STEPS = 4096;			//Instructions run before a program is cut off
+	private static final int CHECKPOINT_INTERVAL = 16;	//Instructions run between checkpoints
+
+	//Every 5 bit opcode the CPU does not implement, which it runs as a NOP
+	private static final int[] NOP_OPCODES = getNopOpcodes();
+
+	/*
+	 * A machine that runs one program on some engine.  step() runs one full instruction and
+	 * returns false once the machine has halted.  The dumps must be copies.
+	 */
+	public interface Machine {
+		boolean step();
+		long getPC();
+		long getSW();
+		long[] getRegisterDump();
+		long[] getMemoryDump();
+	}
+
+	/*
+	 * An execution engine (reference interpreter, fast decode, compiled code, etc) under test.
+	 */
+	public interface Engine {
+		String name();
+		Machine load(long[] memory, long[] regFile);
+	}
+
+	//The reference semantics, CPU's decode()/execute()
+	private static final Engine REFERENCE = new Engine() {
+		public String name() {
+			return "reference";
+		}
+
+		public Machine load(long[] memory, long[] regFile) {
+			final CPU cpu = new CPU(memory, regFile);
+			return new Machine() {
+				public boolean step() { return cpu.step(); }
+				public long getPC() { return cpu.getPC(); }
+				public long getSW() { return cpu.getSW(); }
+				public long[] getRegisterDump() { return cpu.getRegisterDump(); }
+				public long[] getMemoryDump() { return cpu.getMemoryDump(); }
+			};
+		}
+	};
+
+	//Engines compared against REFERENCE, added with register() or --engine
+	private static final List<Engine> ENGINES = new CopyOnWriteArrayList<Engine>();
+
+	/*
+	 * Adds an engine to be compared against the reference.  Call before main() or fuzz().
+	 */
+	public static void register(Engine engine) {
+		ENGINES.add(engine);
+	}
+
+	/*
+	 * A generated program along with the initial data memory and register file it runs on.
+	 */
+	private static class TestCase {
+		private final long[] program;	//Instructions, loaded at address 0
+		private final long[] data;		//Initial memory, overlaid by the program
+		private final long[] regFile;	//Initial register file
+
+		private TestCase(long[] program, long[] data, long[] regFile) {
+			this.program = program;
+			this.data = data;
+			this.regFile = regFile;
+		}
+
+		/*
+		 * Returns a fresh memory image with the program overlaid on the data.
+		 */
+		private long[] memoryImage() {
+			long[] result = data.clone();
+			System.arraycopy(program, 0, result, 0, program.length);
+			return result;
+		}
+	}
+
+	/*
+	 * The checkpoints of one run and how it ended ("HALT", "LIMIT" or the exception thrown).
+	 * Each checkpoint is {steps, PC, SW, registers..., memory...}.
+	 */
+	private static class Trace {
+		private final List<long[]> checkpoints = new ArrayList<long[]>();
+		private String outcome;
+	}
+
+	/*
+	 * Runs the test case on the given engine, taking a checkpoint every CHECKPOINT_INTERVAL
+	 * instructions and once more when the run ends.
+	 */
+	private static Trace run(Engine engine, TestCase testCase) {
+		Trace result = new Trace();
+		Machine machine = engine.load(testCase.memoryImage(), testCase.regFile.clone());
+		int steps = 0;
+		try {
+			while (true) {
+				boolean running = machine.step();
+				steps++;
+				if (!running) {
+					result.outcome = "HALT";
+					break;
+				} else if (steps >= MAX_STEPS) {
+					result.outcome = "LIMIT";
+					break;
+				} else if (steps % CHECKPOINT_INTERVAL == 0) {
+					result.checkpoints.add(checkpoint(machine, steps));
+				}
+			}
+		} catch (RuntimeException e) { //Faults such as out of bounds fetches are part of the semantics
+			result.outcome = e.getClass().getSimpleName();
+		}
+		result.checkpoints.add(checkpoint(machine, steps));
+		return result;
+	}
+
+	/*
+	 * Returns the machine's state as {steps, PC, SW, registers..., memory...}.
+	 */
+	private static long[] checkpoint(Machine machine, int steps) {
+		long[] regFile = machine.getRegisterDump();
+		long[] memory = machine.getMemoryDump();
+		long[] result = new long[3 + regFile.length + memory.length];
+		result[0] = steps;
+		result[1] = machine.getPC();
+		result[2] = machine.getSW();
+		System.arraycopy(regFile, 0, result, 3, regFile.length);
+		System.arraycopy(memory, 0, result, 3 + regFile.length, memory.length);
+		return result;
+	}
+
+	/*
+	 * The first engine that disagreed with the reference on a test case, and where.
+	 */
+	private static class Divergence {
+		private final Engine engine;
+		private final String difference;
+
+		private Divergence(Engine engine, String difference) {
+			this.engine = engine;
+			this.difference = difference;
+		}
+
+		public String toString() {
+			return engine.name() + ": " + difference;
+		}
+	}
+
+	/*
+	 * Runs the test case on every engine and compares each against the reference.  With no other
+	 * engine registered the reference is compared against a second run of itself.
+	 * Returns the first divergence, or null if all engines agree.
+	 */
+	private static Divergence diverges(TestCase testCase) {
+		Trace expected = run(REFERENCE, testCase);
+		List<Engine> engines = ENGINES.isEmpty() ? Arrays.asList(REFERENCE) : ENGINES;
+		for (Engine engine : engines) {
+			String difference = compare(expected, run(engine, testCase));
+			if (difference != null) {
+				return new Divergence(engine, difference);
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Returns the names of the engines under test, with a warning if there are none.
+	 */
+	private static String describeEngines() {
+		if (ENGINES.isEmpty()) {
+			return "none (warning: no engines under test, comparing the reference against itself)";
+		}
+		String result = "";
+		for (Engine engine : ENGINES) {
+			result += (result.isEmpty() ? "" : ", ") + engine.name();
+		}
+		return result;
+	}
+
+	/*
+	 * Returns a description of where the actual trace first differs from the expected one,
+	 * or null if they are the same.
+	 */
+	private static String compare(Trace expected, Trace actual) {
+		int count = Math.min(expected.checkpoints.size(), actual.checkpoints.size());
+		for (int i = 0; i < count; i++) {
+			long[] want = expected.checkpoints.get(i);
+			long[] got = actual.checkpoints.get(i);
+			if (want.length != got.length) {
+				return "at step " + got[0] + " checkpoint has " + got.length + " values, expected " + want.length;
+			}
+			for (int j = 0; j < want.length; j++) {
+				if (want[j] != got[j]) {
+					return "at step " + got[0] + " " + fieldName(j) + " is " + got[j] + ", expected " + want[j];
+				}
+			}
+		}
+		if (expected.checkpoints.size() != actual.checkpoints.size() || !expected.outcome.equals(actual.outcome)) {
+			return "ended with " + actual.outcome + " after " + actual.checkpoints.size() + " checkpoints, expected "
+					+ expected.outcome + " after " + expected.checkpoints.size();
+		}
+		return null;
+	}
+
+	/*
+	 * Returns the name of the given index of a checkpoint.
+	 */
+	private static String fieldName(int index) {
+		if (index == 0) {
+			return "step count";
+		} else if (index == 1) {
+			return "PC";
+		} else if (index == 2) {
+			return "SW";
+		} else if (index < 3 + CPU.REGFILE_SIZE) {
+			return "R" + Integer.toHexString(index - 3).toUpperCase();
+		} else {
+			return "MEM[" + (index - 3 - CPU.REGFILE_SIZE) + "]";
+		}
+	}
+
+	/*
+	 * Generates a random program ending in HALT.  Loops count a reserved register down to zero and
+	 * forward branches only land on instructions outside a loop (or the HALT), so every program is
+	 * bounded.  MAX_STEPS only cuts off programs whose ST rewrites their own instructions.
+	 */
+	private static TestCase generate(SplittableRandom random) {
+		List<Long> program = new ArrayList<Long>();
+		List<Boolean> inLoop = new ArrayList<Boolean>(); //Whether a branch must not land on the instruction
+		List<Integer> branches = new ArrayList<Integer>(); //Addresses of forward branches
+		int size = 1 + random.nextInt(MAX_PROGRAM_SIZE - 1);
+		while (program.size() < size) {
+			int room = MAX_PROGRAM_SIZE - 1 - program.size(); //Leaves room for the HALT
+			int choice = random.nextInt(10);
+			if (choice >= 6 && choice < 8 && room >= MAX_LOOP_BODY + 5) { //Bounded loop
+				addLoop(random, program, inLoop);
+			} else if (choice == 8) { //Forward branch, its offset is chosen once the program is done
+				branches.add(program.size());
+				program.add(format4(random.nextBoolean() ? CPU.BR_OPCODE : CPU.BRZ_OPCODE, 0));
+				inLoop.add(false);
+			} else if (choice == 9 && room >= 2) { //LD or ST through a register set to a memory address
+				int base = random.nextInt(CPU.REGFILE_SIZE);
+				program.add(format1(CPU.LDI_OPCODE, base, random.nextInt(CPU.MEMORY_SIZE + 2)));
+				int opcode = random.nextBoolean() ? CPU.LD_OPCODE : CPU.ST_OPCODE;
+				program.add(format2(opcode, random.nextInt(CPU.REGFILE_SIZE), base, random.nextInt(5) - 2));
+				inLoop.add(false);
+				inLoop.add(false);
+			} else { //Straight line instruction
+				program.add(randomInstruction(random, -1, -1));
+				inLoop.add(false);
+			}
+		}
+		program.add(format4(CPU.HALT_OPCODE, random.nextInt(1 << 27)));
+		inLoop.add(false);
+		for (int branch : branches) { //Offset 0 always lands outside a loop, since branches are never in one
+			int[] offsets = new int[4];
+			int count = 0;
+			for (int offset = 0; offset < offsets.length; offset++) {
+				int target = branch + 1 + offset;
+				if (target < program.size() && !inLoop.get(target)) {
+					offsets[count++] = offset;
+				}
+			}
+			program.set(branch, program.get(branch) | offsets[random.nextInt(count)]);
+		}
+		long[] data = new long[CPU.MEMORY_SIZE];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = randomValue(random);
+		}
+		long[] regFile = new long[CPU.REGFILE_SIZE];
+		for (int i = 0; i < regFile.length; i++) {
+			regFile[i] = randomValue(random);
+		}
+		return new TestCase(toArray(program), data, regFile);
+	}
+
+	/*
+	 * Adds a loop that runs its body count times:
+	 *     LDI rc, count
+	 *     LDI r1, 1
+	 *     body            (never writes rc or r1)
+	 *     SUB rc <- rc - r1
+	 *     BRZ +1          (exit)
+	 *     BR  -(body + 3) (back to body)
+	 */
+	private static void addLoop(SplittableRandom random, List<Long> program, List<Boolean> inLoop) {
+		int counter = random.nextInt(CPU.REGFILE_SIZE);
+		int one = (counter + 1 + random.nextInt(CPU.REGFILE_SIZE - 1)) % CPU.REGFILE_SIZE;
+		int bodySize = 1 + random.nextInt(MAX_LOOP_BODY);
+		program.add(format1(CPU.LDI_OPCODE, counter, 1 + random.nextInt(MAX_LOOP_COUNT)));
+		program.add(format1(CPU.LDI_OPCODE, one, 1));
+		for (int i = 0; i < bodySize; i++) {
+			program.add(randomInstruction(random, counter, one));
+		}
+		program.add(format3(CPU.SUB_OPCODE, counter, counter, one, random.nextInt(1 << 15)));
+		program.add(format4(CPU.BRZ_OPCODE, 1));
+		program.add(format4(CPU.BR_OPCODE, -(bodySize + 3)));
+		inLoop.add(false); //Branching to the LDI rc starts the loop from the top
+		for (int i = 1; i < bodySize + 5; i++) {
+			inLoop.add(true);
+		}
+	}
+
+	/*
+	 * Returns a random non-branching instruction whose destination register is neither of the
+	 * reserved registers (-1 for none).  Unused bits are filled randomly.
+	 */
+	private static long randomInstruction(SplittableRandom random, int reserved1, int reserved2) {
+		int dr;
+		do {
+			dr = random.nextInt(CPU.REGFILE_SIZE);
+		} while (dr == reserved1 || dr == reserved2);
+		int sr1 = random.nextInt(CPU.REGFILE_SIZE);
+		int sr2 = random.nextInt(CPU.REGFILE_SIZE);
+		switch (random.nextInt(9)) {
+			case 0:
+				return format1(CPU.LDI_OPCODE, dr, randomImmediate(random, 23));
+			case 1:
+				return format2(CPU.LD_OPCODE, dr, sr1, randomImmediate(random, 19));
+			case 2:
+				return format2(CPU.ST_OPCODE, random.nextInt(CPU.REGFILE_SIZE), sr1, randomImmediate(random, 19));
+			case 3:
+				return format3(CPU.ADD_OPCODE, dr, sr1, sr2, random.nextInt(1 << 15));
+			case 4:
+				return format3(CPU.SUB_OPCODE, dr, sr1, sr2, random.nextInt(1 << 15));
+			case 5:
+				return format3(CPU.AND_OPCODE, dr, sr1, sr2, random.nextInt(1 << 15));
+			case 6:
+				return format3(CPU.OR_OPCODE, dr, sr1, sr2, random.nextInt(1 << 15));
+			case 7:
+				return format2(CPU.NOT_OPCODE, dr, sr1, randomImmediate(random, 19));
+			default:
+				return format4(NOP_OPCODES[random.nextInt(NOP_OPCODES.length)], random.nextInt(1 << 27));
+		}
+	}
+
+	/*
+	 * Returns a random two's complement immediate of the given width, favoring edge values.
+	 */
+	private static int randomImmediate(SplittableRandom random, int bits) {
+		int max = (1 << (bits - 1)) - 1;
+		switch (random.nextInt(8)) {
+			case 0:
+				return 0;
+			case 1:
+				return max;
+			case 2:
+				return -max - 1;
+			case 3:
+				return random.nextInt(2 * CPU.MEMORY_SIZE) - CPU.MEMORY_SIZE;
+			default:
+				return random.nextInt(2 * max + 2) - max - 1;
+		}
+	}
+
+	/*
+	 * Returns a random initial register or memory value, up to 2^31-1 like the CPU's own.
+	 */
+	private static long randomValue(SplittableRandom random) {
+		switch (random.nextInt(8)) {
+			case 0:
+				return 0;
+			case 1:
+				return CPU.TWOS_COMP_MAX;
+			default:
+				return (long) (CPU.TWOS_COMP_MAX * random.nextDouble());
+		}
+	}
+
+	//Encoders for each instruction format: 5 bit opcode, then 4 bit registers, then the immediate
+	private static long format1(int opcode, int dr, int immed) {
+		return ((long) opcode << 27) | ((long) dr << 23) | (immed & 0x7FFFFFL);
+	}
+
+	private static long format2(int opcode, int dr, int sr1, int immed) {
+		return ((long) opcode << 27) | ((long) dr << 23) | ((long) sr1 << 19) | (immed & 0x7FFFFL);
+	}
+
+	private static long format3(int opcode, int dr, int sr1, int sr2, int unused) {
+		return ((long) opcode << 27) | ((long) dr << 23) | ((long) sr1 << 19) | ((long) sr2 << 15)
+				| (unused & 0x7FFFL);
+	}
+
+	private static long format4(int opcode, int immed) {
+		return ((long) opcode << 27) | (immed & 0x7FFFFFFL);
+	}
+
+	/*
+	 * Returns every 5 bit opcode that is not in CPU.OPCODES.
+	 */
+	private static int[] getNopOpcodes() {
+		int[] result = new int[32 - CPU.OPCODES.length];
+		int count = 0;
+		for (int opcode = 0; opcode < 32; opcode++) {
+			boolean implemented = false;
+			for (int known : CPU.OPCODES) {
+				implemented |= (known == opcode);
+			}
+			if (!implemented) {
+				result[count++] = opcode;
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * Shrinks a diverging test case.  It first removes chunks of instructions, halving the chunk
+	 * size down to one, then simplifies each remaining instruction (NOP, then operands cleared),
+	 * then zeroes each initial register and data word, and repeats until nothing more can be
+	 * changed while keeping the divergence.  The final HALT is never removed or turned into a NOP.
+	 * Every accepted change makes the program shorter or a value smaller, so this ends.
+	 */
+	private static TestCase shrink(TestCase testCase) {
+		long[] program = testCase.program;
+		long[] data = testCase.data.clone();
+		long[] regFile = testCase.regFile.clone();
+		boolean progress = true;
+		while (progress) {
+			progress = false;
+			for (int chunk = Math.max(1, (program.length - 1) / 2); chunk >= 1; chunk /= 2) {
+				int i = 0;
+				while (i + chunk < program.length) { //Leaves the last instruction (HALT) in place
+					long[] candidate = new long[program.length - chunk];
+					System.arraycopy(program, 0, candidate, 0, i);
+					System.arraycopy(program, i + chunk, candidate, i, program.length - i - chunk);
+					if (diverges(new TestCase(candidate, data, regFile)) != null) {
+						program = candidate;
+						progress = true;
+					} else {
+						i += chunk;
+					}
+				}
+			}
+			for (int i = 0; i < program.length; i++) {
+				long[] simplifications = i == program.length - 1 ? new long[] {program[i] & 0xF8000000L}
+						: new long[] {0, program[i] & 0xFFFF8000L, program[i] & 0xFFF80000L, program[i] & 0xF8000000L};
+				for (long simpler : simplifications) {
+					if (simpler >= program[i]) {
+						continue;
+					}
+					long[] candidate = program.clone();
+					candidate[i] = simpler;
+					if (diverges(new TestCase(candidate, data, regFile)) != null) {
+						program = candidate;
+						progress = true;
+					}
+				}
+			}
+			progress |= zeroEntries(regFile, program, data, regFile);
+			progress |= zeroEntries(data, program, data, regFile);
+		}
+		return new TestCase(program, data, regFile);
+	}
+
+	/*
+	 * Zeroes each non-zero entry of values (the test case's data or regFile) that is not needed
+	 * for the divergence.  Returns true if any entry was zeroed.
+	 */
+	private static boolean zeroEntries(long[] values, long[] program, long[] data, long[] regFile) {
+		boolean result = false;
+		for (int i = 0; i < values.length; i++) {
+			long value = values[i];
+			if (value == 0) {
+				continue;
+			}
+			values[i] = 0;
+			if (diverges(new TestCase(program, data, regFile)) != null) {
+				result = true;
+			} else {
+				values[i] = value;
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * Prints the shrunk test case and writes it to fuzz_<seed>.txt, which --replay reads back.
+	 */
+	private static void report(long seed, TestCase original, TestCase shrunk, Divergence divergence) {
+		System.out.println();
+		System.out.println(" Divergence for seed " + seed + " (" + original.program.length + " instructions, shrunk to "
+				+ shrunk.program.length + ")");
+		System.out.println(" " + divergence);
+		System.out.println(" Register File");
+		for (int i = 0; i < shrunk.regFile.length; i++) {
+			System.out.println(" " + Integer.toHexString(i).toUpperCase() + ": " + toHex(shrunk.regFile[i]));
+		}
+		System.out.println(" Program");
+		for (int i = 0; i < shrunk.program.length; i++) {
+			System.out.println(" " + toHex(i) + ":" + toHex(shrunk.program[i]));
+		}
+		System.out.println(" Data (other words are 0)");
+		for (int i = shrunk.program.length; i < shrunk.data.length; i++) {
+			if (shrunk.data[i] != 0) {
+				System.out.println(" " + toHex(i) + ":" + toHex(shrunk.data[i]));
+			}
+		}
+		String fileName = "fuzz_" + seed + ".txt";
+		String engineClass = divergence == null ? null : divergence.engine.getClass().getName();
+		try {
+			save(shrunk, engineClass, fileName);
+			System.out.println(" Written to " + fileName + ", rerun with: java CPUFuzzer --engine " + engineClass
+					+ " --replay " + fileName);
+		} catch (IOException e) { //Catch exceptions caused by writing the file
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Writes an "ENGINE:<class>" line naming the engine that diverged (if any), the test case's
+	 * register file as "R<reg>:<hex>" lines and its memory image as "<address>:<hex>" lines.
+	 */
+	private static void save(TestCase testCase, String engineClass, String fileName) throws IOException {
+		try (PrintWriter writer = new PrintWriter(new FileWriter(fileName))) {
+			if (engineClass != null) {
+				writer.println("ENGINE:" + engineClass);
+			}
+			for (int i = 0; i < testCase.regFile.length; i++) {
+				writer.println("R" + Integer.toHexString(i).toUpperCase() + ":" + toHex(testCase.regFile[i]));
+			}
+			long[] memory = testCase.memoryImage();
+			for (int i = 0; i < memory.length; i++) {
+				writer.println(toHex(i) + ":" + toHex(memory[i]));
+			}
+		}
+	}
+
+	/*
+	 * Reads a test case written by save().  The whole memory image becomes its data.  The engine
+	 * class named in the file is added to engineClasses, if that is not null.
+	 */
+	private static TestCase load(String fileName, List<String> engineClasses) throws IOException {
+		long[] regFile = new long[CPU.REGFILE_SIZE];
+		long[] data = new long[CPU.MEMORY_SIZE];
+		try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int colonIndex = line.indexOf(':');
+				if (colonIndex < 0) {
+					continue;
+				}
+				if (line.startsWith("ENGINE:")) {
+					if (engineClasses != null) {
+						engineClasses.add(line.substring(colonIndex + 1).trim());
+					}
+					continue;
+				}
+				long value = Long.parseLong(line.substring(colonIndex + 1).trim(), 16);
+				if (line.startsWith("R")) {
+					regFile[Integer.parseInt(line.substring(1, colonIndex), 16)] = value;
+				} else {
+					data[(int) Long.parseLong(line.substring(0, colonIndex), 16)] = value;
+				}
+			}
+		}
+		return new TestCase(new long[0], data, regFile);
+	}
+
+	/*
+	 * Returns the low 32 bits of the input as an 8 digit uppercase hex String.
+	 */
+	private static String toHex(long input) {
+		return String.format("%08X", input & 0xFFFFFFFFL);
+	}
+
+	private static long[] toArray(List<Long> list) {
+		long[] result = new long[list.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = list.get(i);
+		}
+		return result;
+	}
+
+	/*
+	 * The first failure of a run: either a divergence (with the original and shrunk test case) or
+	 * something thrown by an engine or the harness itself.
+	 */
+	private static class Failure {
+		private final long seed;
+		private final TestCase original;
+		private final TestCase shrunk;
+		private final Divergence divergence;
+		private final Throwable error;
+
+		private Failure(long seed, TestCase original, TestCase shrunk, Divergence divergence, Throwable error) {
+			this.seed = seed;
+			this.original = original;
+			this.shrunk = shrunk;
+			this.divergence = divergence;
+			this.error = error;
+		}
+	}
+
+	/*
+	 * The result of fuzz(): how many programs passed and the first failure, if any.
+	 */
+	private static class Result {
+		private final AtomicLong passed = new AtomicLong();
+		private volatile Failure failure;
+
+		/*
+		 * Records and reports the failure if it is the first one.
+		 */
+		private synchronized void fail(Failure failure) {
+			if (this.failure != null) {
+				return;
+			}
+			this.failure = failure;
+			if (failure.error != null) {
+				System.out.println();
+				System.out.println(" Error for seed " + failure.seed + ", rerun with the same engines and: 1 " + failure.seed);
+				failure.error.printStackTrace(System.out);
+			} else {
+				report(failure.seed, failure.original, failure.shrunk, failure.divergence);
+			}
+		}
+	}
+
+	/*
+	 * Runs programs seed to seed + programs - 1 on a pool of threads until they have all passed or
+	 * one fails, printing the throughput as it goes.  Anything thrown while running a program
+	 * counts as a failure.
+	 */
+	private static Result fuzz(final long programs, final long seed, int threads) throws InterruptedException {
+		final Result result = new Result();
+		final AtomicLong next = new AtomicLong();
+		System.out.println(" Fuzzing " + programs + " programs from seed " + seed + " on " + threads
+				+ " threads, engines under test: " + describeEngines());
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		for (int t = 0; t < threads; t++) {
+			pool.execute(new Runnable() {
+				public void run() {
+					long i;
+					while (result.failure == null && (i = next.getAndIncrement()) < programs) {
+						try {
+							TestCase testCase = generate(new SplittableRandom(seed + i));
+							if (diverges(testCase) != null) {
+								TestCase shrunk = shrink(testCase);
+								result.fail(new Failure(seed + i, testCase, shrunk, diverges(shrunk), null));
+							} else {
+								result.passed.incrementAndGet();
+							}
+						} catch (Throwable e) { //Anything thrown by an engine or the harness fails the run
+							result.fail(new Failure(seed + i, null, null, null, e));
+						}
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		long start = System.nanoTime();
+		while (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+			printProgress(result.passed.get(), start);
+		}
+		printProgress(result.passed.get(), start);
+		return result;
+	}
+
+	private static void printProgress(long done, long start) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(" " + done + " programs in " + String.format("%.1f", seconds) + "s ("
+				+ String.format("%.0f", done / seconds * 3600) + " per hour)");
+	}
+
+	/*
+	 * Runs the test case in the given file on every engine.  If no engine was given, the engine named
+	 * in the file is used.  Returns true if they all agree, false if they do not or there is no
+	 * engine to run.
+	 */
+	private static boolean replay(String fileName) throws IOException {
+		List<String> engineClasses = new ArrayList<String>();
+		TestCase testCase = load(fileName, engineClasses);
+		if (ENGINES.isEmpty()) {
+			for (String className : engineClasses) {
+				if (!registerClass(className)) {
+					return false;
+				}
+			}
+		}
+		if (ENGINES.isEmpty()) {
+			System.out.println(" Error, no engines under test to replay " + fileName + " against.");
+			return false;
+		}
+		Divergence divergence = diverges(testCase);
+		if (divergence != null) {
+			System.out.println(" " + divergence);
+			return false;
+		}
+		System.out.println(" All engines (" + describeEngines() + ") agree on " + fileName + ".");
+		return true;
+	}
+
+	/*
+	 * Registers an instance of the named Engine class, which needs a public no-argument constructor.
+	 * Returns false if it could not be loaded.
+	 */
+	private static boolean registerClass(String className) {
+		try {
+			register((Engine) Class.forName(className).getDeclaredConstructor().newInstance());
+			return true;
+		} catch (ReflectiveOperationException | ClassCastException e) { //Not a loadable Engine
+			System.out.println(" Error, could not load engine " + className + ": " + e);
+			return false;
+		}
+	}
+
+	/*
+	 * Checks the harness itself by registering deliberately broken engines: one that drops the SW
+	 * overflow flag must be caught, shrunk and replayable, one that throws an Error and one with a
+	 * short register dump must fail the run, and the reference alone must pass every program.
+	 * Returns true if every check passed.
+	 */
+	private static boolean selfTest(int threads) throws InterruptedException, IOException {
+		List<Engine> saved = new ArrayList<Engine>(ENGINES);
+		try {
+			ENGINES.clear();
+			register(new BrokenEngine(BrokenEngine.NO_OVERFLOW));
+			Result result = fuzz(2000, 1, threads);
+			Failure failure = result.failure;
+			if (failure == null || failure.error != null) {
+				return selfTestFailed("dropped overflow flag was not reported as a divergence");
+			}
+			TestCase shrunk = failure.shrunk;
+			if (diverges(shrunk) == null || shrunk.program.length > failure.original.program.length) {
+				return selfTestFailed("shrunk test case does not diverge or is longer");
+			}
+			if ((shrunk.program[shrunk.program.length - 1] >>> 27) != CPU.HALT_OPCODE) {
+				return selfTestFailed("shrunk program does not end in HALT");
+			}
+			File file = new File("fuzz_" + failure.seed + ".txt");
+			boolean replayed = diverges(load(file.getPath(), null)) != null;
+			file.delete();
+			if (!replayed) {
+				return selfTestFailed("written test case does not diverge when read back");
+			}
+
+			ENGINES.clear();
+			register(new BrokenEngine(BrokenEngine.THROWS));
+			failure = fuzz(200, 1, threads).failure;
+			if (failure == null || !(failure.error instanceof AssertionError)) {
+				return selfTestFailed("Error thrown by an engine did not fail the run");
+			}
+
+			ENGINES.clear();
+			register(new BrokenEngine(BrokenEngine.SHORT_DUMP));
+			failure = fuzz(200, 1, threads).failure;
+			if (failure == null || failure.error != null) {
+				return selfTestFailed("short register dump was not reported as a divergence");
+			}
+			new File("fuzz_" + failure.seed + ".txt").delete();
+
+			ENGINES.clear();
+			result = fuzz(200, 1, threads);
+			if (result.failure != null || result.passed.get() != 200) {
+				return selfTestFailed("reference does not agree with itself");
+			}
+		} finally {
+			ENGINES.clear();
+			ENGINES.addAll(saved);
+		}
+		System.out.println();
+		System.out.println(" Self-test passed.");
+		return true;
+	}
+
+	private static boolean selfTestFailed(String message) {
+		System.out.println();
+		System.out.println(" Self-test failed: " + message);
+		return false;
+	}
+
+	/*
+	 * The reference with a deliberate bug, used by the self-test.
+	 */
+	private static class BrokenEngine implements Engine {
+		private static final int NO_OVERFLOW = 0;	//Reports SW without the overflow flag
+		private static final int THROWS = 1;		//Throws an AssertionError on the first step
+		private static final int SHORT_DUMP = 2;	//Leaves the last register out of the dump
+
+		private final int bug;
+
+		private BrokenEngine(int bug) {
+			this.bug = bug;
+		}
+
+		public String name() {
+			return "broken";
+		}
+
+		public Machine load(long[] memory, long[] regFile) {
+			final Machine machine = REFERENCE.load(memory, regFile);
+			return new Machine() {
+				public boolean step() {
+					if (bug == THROWS) {
+						throw new AssertionError("broken engine");
+					}
+					return machine.step();
+				}
+
+				public long getPC() {
+					return machine.getPC();
+				}
+
+				public long getSW() {
+					return bug == NO_OVERFLOW ? machine.getSW() & ~(1L << 27) : machine.getSW();
+				}
+
+				public long[] getRegisterDump() {
+					long[] dump = machine.getRegisterDump();
+					return bug == SHORT_DUMP ? Arrays.copyOf(dump, dump.length - 1) : dump;
+				}
+
+				public long[] getMemoryDump() {
+					return machine.getMemoryDump();
+				}
+			};
+		}
+	}
+
+	/*
+	 * This is the main method to start the harness.  Exits with status 1 unless every program passed.
+	 */
+	public static void main(String[] args) throws InterruptedException, IOException {
+		List<String> values = new ArrayList<String>();
+		boolean selfTest = false;
+		String replayFile = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--self-test")) {
+				selfTest = true;
+			} else if (args[i].equals("--replay") && i + 1 < args.length) {
+				replayFile = args[++i];
+			} else if (args[i].equals("--engine") && i + 1 < args.length) {
+				if (!registerClass(args[++i])) {
+					System.exit(1);
+				}
+			} else {
+				values.add(args[i]);
+			}
+		}
+		long programs = values.size() > 0 ? Long.parseLong(values.get(0)) : 1000000;
+		long seed = values.size() > 1 ? Long.parseLong(values.get(1)) : System.nanoTime();
+		int threads = values.size() > 2 ? Integer.parseInt(values.get(2)) : Runtime.getRuntime().availableProcessors();
+
+		boolean passed;
+		if (selfTest) {
+			passed = selfTest(threads);
+		} else if (replayFile != null) {
+			passed = replay(replayFile);
+		} else {
+			Result result = fuzz(programs, seed, threads);
+			passed = result.failure == null && result.passed.get() == programs;
+			if (passed && ENGINES.isEmpty()) {
+				System.out.println(" No divergences found, but no engines were under test (reference vs itself).");
+			} else if (passed) {
+				System.out.println(" No divergences found.");
+			} else if (result.failure == null) {
+				System.out.println(" Only " + result.passed.get() + " of " + programs + " programs ran.");
+			}
+		}
+		System.exit(passed ? 0 : 1);
+	}
+}